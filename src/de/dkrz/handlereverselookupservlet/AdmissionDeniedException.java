@@ -0,0 +1,22 @@
+package de.dkrz.handlereverselookupservlet;
+
+public class AdmissionDeniedException extends Exception {
+
+	private static final long serialVersionUID = -3583926482187440719L;
+
+	private final long retryAfterSeconds;
+
+	public AdmissionDeniedException(String message, long retryAfterSeconds) {
+		super(message);
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	/**
+	 * @return Number of seconds after which the request may succeed, suitable
+	 *         for a Retry-After header.
+	 */
+	public long getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+
+}
@@ -4,7 +4,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.sql.SQLException;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
@@ -27,7 +26,7 @@ public class HRLSApplication extends Application {
 	private Set<Class<?>> emptySet = new HashSet<Class<?>>();
 
 	public HRLSApplication(@Context ServletContext servletContext)
-			throws ClassNotFoundException, FileNotFoundException, IOException, InvalidConfigException, SQLException {
+			throws FileNotFoundException, IOException, InvalidConfigException {
 		// Get config from context (singleton)
 		LOGGER.info("HandleReverseLookupServlet starting...");
 		Map<Object, Object> env = System.getProperties();
@@ -48,9 +47,9 @@ public class HRLSApplication extends Application {
 			}
 		}
 		ReverseLookupConfig hrlsConfig = new ReverseLookupConfig(servletContext, env);
-		// Create DataSource instance
-		hrlsConfig.createHandleDataSource();
-		hrlsConfig.createSolrClient();
+		// Create DataSource and Solr client concurrently in the background;
+		// readiness is reported via the 'ready' resource
+		hrlsConfig.initializeBackends();
 		// Set up servlet
 		singletons.add(new HandleReverseLookupResource(hrlsConfig));
 	}
@@ -0,0 +1,265 @@
+package de.dkrz.handlereverselookupservlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.sql.DataSource;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Second phase of full record retrieval: Given the Handles resolved by a
+ * search, fetches their values from the Handle SQL storage and streams them
+ * out as a JSON object mapping each Handle name to its list of type/value
+ * pairs. <br/>
+ *
+ * Values are fetched via <code>handle IN (...)</code> queries of at most
+ * {@link ReverseLookupConfig#getRecordRetrievalChunkSize()} Handles each. Up
+ * to {@link ReverseLookupConfig#getRecordRetrievalThreads()} chunks are
+ * fetched ahead in parallel (on the worker pool shared by all requests) while
+ * earlier chunks are written, so memory use is bounded by the window rather
+ * than by the full result. <br/>
+ *
+ * Call {@link #prefetch()} before handing the instance to JAX-RS: it waits for
+ * the first chunk, so failures there can still be answered with a proper
+ * error response. Failures in later chunks occur after the response has been
+ * committed and cut it off.
+ *
+ */
+public class HandleRecordsOutput implements StreamingOutput {
+
+	private static final Logger LOGGER = LogManager.getLogger(HandleRecordsOutput.class);
+
+	// The servlet container owns the output stream, so do not close it here.
+	// A failed retrieval must not be closed into valid-looking JSON either.
+	private static final JsonFactory JSON_FACTORY = new JsonFactory()
+			.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+			.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+
+	private final DataSource dataSource;
+	private final ExecutorService executor;
+	private final List<List<String>> chunks;
+	private final int handleCount;
+	private final int window;
+	private final UserAdmissionControl.Ticket ticket;
+
+	private final LinkedList<Future<Map<String, List<Map<String, String>>>>> pending = new LinkedList<Future<Map<String, List<Map<String, String>>>>>();
+	private int nextChunk = 0;
+	private int writtenChunks = 0;
+
+	/**
+	 * @param config
+	 *            The configuration providing SQL data source, executor and
+	 *            chunking parameters.
+	 * @param handles
+	 *            The Handles whose records should be retrieved. Duplicates are
+	 *            ignored; the output follows the order of first occurrence.
+	 * @param ticket
+	 *            The requesting user's admission, released once all records
+	 *            have been written. May be null.
+	 */
+	public HandleRecordsOutput(ReverseLookupConfig config, List<String> handles, UserAdmissionControl.Ticket ticket) {
+		super();
+		this.ticket = ticket;
+		this.dataSource = config.getHandleDataSource();
+		this.executor = config.getRecordRetrievalExecutor();
+		this.window = config.getRecordRetrievalThreads();
+		int chunkSize = config.getRecordRetrievalChunkSize();
+		this.chunks = new ArrayList<List<String>>();
+		List<String> chunk = null;
+		Set<String> distinctHandles = new LinkedHashSet<String>(handles);
+		this.handleCount = distinctHandles.size();
+		for (String handle : distinctHandles) {
+			if ((chunk == null) || (chunk.size() >= chunkSize)) {
+				chunk = new ArrayList<String>(chunkSize);
+				chunks.add(chunk);
+			}
+			chunk.add(handle);
+		}
+	}
+
+	private void fillWindow() {
+		while ((nextChunk < chunks.size()) && (pending.size() < window)) {
+			pending.add(executor.submit(new ChunkFetch(chunks.get(nextChunk))));
+			nextChunk++;
+		}
+	}
+
+	private void cancelPending() {
+		for (Future<?> f : pending) {
+			f.cancel(true);
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Starts fetching the first chunks and waits until the first one is
+	 * available, before any part of the response has been sent.
+	 * 
+	 * @throws SQLException
+	 *             if the first chunk could not be fetched.
+	 * @throws IOException
+	 *             if waiting for the first chunk was interrupted or failed for
+	 *             a reason other than SQL.
+	 */
+	public void prefetch() throws SQLException, IOException {
+		fillWindow();
+		if (pending.isEmpty())
+			return;
+		try {
+			pending.getFirst().get();
+		} catch (InterruptedException exc) {
+			cancelPending();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while retrieving records", exc);
+		} catch (ExecutionException exc) {
+			cancelPending();
+			if (exc.getCause() instanceof SQLException)
+				throw (SQLException) exc.getCause();
+			throw new IOException("Record retrieval failed: " + exc.getCause().getMessage(), exc.getCause());
+		}
+	}
+
+	@Override
+	public void write(OutputStream output) throws IOException, WebApplicationException {
+		JsonGenerator generator = JSON_FACTORY.createGenerator(output, JsonEncoding.UTF8);
+		try {
+			generator.writeStartObject();
+			while ((nextChunk < chunks.size()) || !pending.isEmpty()) {
+				// Keep the window of in-flight chunk fetches filled
+				fillWindow();
+				Map<String, List<Map<String, String>>> records = pending.removeFirst().get();
+				for (Map.Entry<String, List<Map<String, String>>> entry : records.entrySet()) {
+					generator.writeArrayFieldStart(entry.getKey());
+					for (Map<String, String> pair : entry.getValue()) {
+						generator.writeStartObject();
+						generator.writeStringField("type", pair.get("type"));
+						generator.writeStringField("value", pair.get("value"));
+						generator.writeEndObject();
+					}
+					generator.writeEndArray();
+				}
+				generator.flush();
+				writtenChunks++;
+			}
+			generator.writeEndObject();
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			LOGGER.error("Record retrieval interrupted after " + writtenChunks + " of " + chunks.size()
+					+ " chunks were sent; the response is truncated");
+			throw new IOException("Interrupted while retrieving records", exc);
+		} catch (ExecutionException exc) {
+			LOGGER.error("Record retrieval failed after " + writtenChunks + " of " + chunks.size()
+					+ " chunks were sent; the response is truncated", exc.getCause());
+			throw new IOException("Record retrieval failed: " + exc.getCause().getMessage(), exc.getCause());
+		} finally {
+			cancelPending();
+			generator.close();
+			if (ticket != null)
+				ticket.release(handleCount);
+		}
+	}
+
+	/**
+	 * Fetches all values (except HS_SECKEY) of a single chunk of Handles,
+	 * grouped per Handle in the order of the chunk.
+	 */
+	private class ChunkFetch implements Callable<Map<String, List<Map<String, String>>>> {
+
+		private final List<String> handles;
+
+		public ChunkFetch(List<String> handles) {
+			this.handles = handles;
+		}
+
+		@Override
+		public Map<String, List<Map<String, String>>> call() throws SQLException {
+			Map<String, List<Map<String, String>>> results = new LinkedHashMap<String, List<Map<String, String>>>();
+			for (String handle : handles) {
+				results.put(handle, new LinkedList<Map<String, String>>());
+			}
+			StringBuffer sb = new StringBuffer("select handle, type, data from handles where handle in (");
+			for (int i = 0; i < handles.size(); i++) {
+				if (i > 0)
+					sb.append(",");
+				sb.append("?");
+			}
+			sb.append(") and type != 'HS_SECKEY'");
+			Connection connection = null;
+			PreparedStatement statement = null;
+			ResultSet resultSet = null;
+			try {
+				connection = dataSource.getConnection();
+				statement = connection.prepareStatement(sb.toString());
+				int index = 1;
+				for (String handle : handles) {
+					statement.setString(index, handle);
+					index++;
+				}
+				resultSet = statement.executeQuery();
+				while (resultSet.next()) {
+					List<Map<String, String>> handlevalues = results.get(resultSet.getString(1));
+					if (handlevalues == null)
+						continue;
+					Map<String, String> pair = new LinkedHashMap<String, String>();
+					pair.put("type", resultSet.getString(2));
+					pair.put("value", resultSet.getString(3));
+					handlevalues.add(pair);
+				}
+			} finally {
+				if (resultSet != null) {
+					try {
+						resultSet.close();
+					} catch (SQLException e) {
+						// swallow
+					}
+				}
+				if (statement != null) {
+					try {
+						statement.close();
+					} catch (SQLException e) {
+						// swallow
+					}
+				}
+				if (connection != null) {
+					try {
+						connection.close();
+					} catch (SQLException e) {
+						// swallow
+					}
+				}
+			}
+			// Handles may have been deleted between both phases
+			Iterator<List<Map<String, String>>> iter = results.values().iterator();
+			while (iter.hasNext()) {
+				if (iter.next().isEmpty())
+					iter.remove();
+			}
+			return results;
+		}
+	}
+
+}
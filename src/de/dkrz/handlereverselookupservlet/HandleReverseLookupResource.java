@@ -5,10 +5,11 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.sql.DataSource;
@@ -54,6 +55,42 @@ public class HandleReverseLookupResource {
 		return "OK\n";
 	}
 
+	/**
+	 * Reports whether the configured backends have finished initializing.
+	 * Unlike {@link #ping()}, this returns 503 (Service Unavailable) until all
+	 * configured backends are ready, so load balancers can hold back traffic
+	 * during startup.
+	 * 
+	 * @return A JSON object with overall readiness and per-backend status.
+	 */
+	@GET
+	@Path("ready")
+	@Produces("application/json")
+	public Response ready() {
+		ReverseLookupConfig configuration = ReverseLookupConfig.getInstance();
+		boolean ready = (!configuration.useSql() || configuration.isSqlReady())
+				&& (!configuration.useSolr() || configuration.isSolrReady());
+		Map<String, Object> status = new LinkedHashMap<String, Object>();
+		status.put("ready", ready);
+		status.put("sql", configuration.getSqlStatus());
+		status.put("solr", configuration.getSolrStatus());
+		return Response.status(ready ? Response.Status.OK : Response.Status.SERVICE_UNAVAILABLE)
+				.entity(status).type(MediaType.APPLICATION_JSON).build();
+	}
+
+	/**
+	 * Reports per-user admission control counters since servlet startup.
+	 * 
+	 * @return A JSON object with the number of admitted and rejected requests.
+	 */
+	@GET
+	@Path("metrics")
+	@Produces("application/json")
+	public Response metrics() {
+		ReverseLookupConfig configuration = ReverseLookupConfig.getInstance();
+		return Response.ok(configuration.getUserAdmissionControl().getMetrics(), MediaType.APPLICATION_JSON).build();
+	}
+
 	@GET
 	@Path("handles")
 	@Produces("application/json")
@@ -95,9 +132,10 @@ public class HandleReverseLookupResource {
 	 * <li><em>enforcesql:</em> If both SQL and Solr are configured for
 	 * searching, Solr takes precedence by default. If enforcesql is set to
 	 * true, SQL will be used instead of Solr.
-	 * <li><em>retrieverecords (SQL only):</em> Do not only return Handle names,
-	 * but full record contents. Note: This only works if only one search field
-	 * is given.</li>
+	 * <li><em>retrieverecords:</em> Do not only return Handle names, but full
+	 * record contents. Matching Handles are first resolved via Solr or SQL as
+	 * usual, any number of search fields included; their records are then
+	 * fetched from the SQL storage, which therefore must be configured.</li>
 	 * </dl>
 	 * 
 	 * @param info
@@ -118,6 +156,9 @@ public class HandleReverseLookupResource {
 		int loggingResultCode = 0;
 		boolean enforceSql = false;
 		boolean retrieveRecords = false;
+		String username = getUsername(httpServletRequest);
+		UserAdmissionControl.Ticket ticket = null;
+		int returnedRows = 0;
 		MultivaluedMap<String, String> filteredParams = new MultivaluedHashMap<String, String>(params);
 		try {
 			try {
@@ -150,26 +191,69 @@ public class HandleReverseLookupResource {
 						return Response.serverError().entity("Searching via HS_SECKEY entries is not allowed!").build();
 					}
 				}
-				Object result;
-				boolean resultIsEmpty = true;
+				if (retrieveRecords && !configuration.useSql()) {
+					loggingResultCode = 3;
+					return Response.serverError()
+							.entity("Retrieving records requires SQL, but this service is not configured for SQL.")
+							.build();
+				}
 				// If available, search via solr takes precedence over SQL
 				// unless
 				// enforced otherwise
-				if (configuration.useSolr() && !enforceSql) {
-					result = genericSolrSearch(filteredParams, limit);
-					resultIsEmpty = ((List) result).isEmpty();
-				} else {
-					result = genericSqlSearch(prefix, filteredParams, limit, page, retrieveRecords);
-					if (result instanceof HashMap) {
-						resultIsEmpty = ((HashMap) result).isEmpty();
-					} else if (result instanceof List) {
-						resultIsEmpty = ((List) result).isEmpty();
+				boolean useSolr = configuration.useSolr() && !enforceSql;
+				if ((useSolr && !configuration.isSolrReady())
+						|| ((!useSolr || retrieveRecords) && !configuration.isSqlReady())) {
+					loggingResultCode = 4;
+					return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+							.entity("The search backend is not ready yet, please try again later.").build();
+				}
+				// Per-user admission control, checked before any backend call
+				UserAdmissionControl admissionControl = configuration.getUserAdmissionControl();
+				if (admissionControl.isEnabled()) {
+					int requestedRows = (limit == null) ? 1000 : Math.max(limit, 0);
+					// SQL searches never return more than 100000 rows
+					if (!useSolr)
+						requestedRows = Math.min(requestedRows, 100000);
+					if (admissionControl.exceedsResultRowBudget(requestedRows)) {
+						loggingResultCode = 5;
+						return Response.status(Response.Status.BAD_REQUEST)
+								.entity("The requested limit of " + requestedRows
+										+ " rows exceeds the per-user result row budget of "
+										+ admissionControl.getMaxResultRows() + " rows.")
+								.build();
+					}
+					try {
+						ticket = admissionControl.admit(username, requestedRows);
+					} catch (AdmissionDeniedException exc) {
+						loggingResultCode = 5;
+						LOGGER.info("Rejected request of user " + username + ": " + exc.getMessage());
+						return Response.status(429).header("Retry-After", exc.getRetryAfterSeconds())
+								.entity(exc.getMessage()).build();
 					}
 				}
-				if (!resultIsEmpty)
+				List<String> handles;
+				if (useSolr) {
+					handles = genericSolrSearch(filteredParams, limit);
+				} else {
+					handles = genericSqlSearch(prefix, filteredParams, limit, page);
+				}
+				if (!handles.isEmpty())
 					loggingResultCode = 1;
-				return Response.ok(result, MediaType.APPLICATION_JSON).build();
+				returnedRows = handles.size();
+				if (retrieveRecords) {
+					// Second phase: fetch record contents of the resolved
+					// Handles in chunks and stream them out; the admission is
+					// held until streaming has finished. The first chunk is
+					// fetched here so its errors still get a proper response.
+					HandleRecordsOutput output = new HandleRecordsOutput(configuration, handles, ticket);
+					output.prefetch();
+					ticket = null;
+					return Response.ok(output, MediaType.APPLICATION_JSON).build();
+				}
+				return Response.ok(handles, MediaType.APPLICATION_JSON).build();
 			} finally {
+				if (ticket != null)
+					ticket.release(returnedRows);
 				// Logging
 				if (reverseLookupConfig.isLogAllQueries()) {
 					long duration = System.currentTimeMillis() - startTime;
@@ -178,12 +262,6 @@ public class HandleReverseLookupResource {
 						q = q + "?" + info.getRequestUri().getQuery();
 					if (info.getRequestUri().getFragment() != null)
 						q = q + "#" + info.getRequestUri().getFragment();
-					String authHeader = httpServletRequest.getHeader("authorization");
-					String username = "<undefined>";
-					if ((authHeader != null) && authHeader.startsWith("Basic")) {
-						username = new String(DatatypeConverter.parseBase64Binary(authHeader.substring(5).trim()));
-						username = username.split(":", 2)[0];
-					}
 					String sourceAddress = httpServletRequest.getRemoteAddr();
 					// Format: <source address> <status code> <time_taken>
 					// <username> <query>
@@ -210,6 +288,16 @@ public class HandleReverseLookupResource {
 		}
 	}
 
+	private static String getUsername(HttpServletRequest httpServletRequest) {
+		String authHeader = httpServletRequest.getHeader("authorization");
+		String username = "<undefined>";
+		if ((authHeader != null) && authHeader.startsWith("Basic")) {
+			username = new String(DatatypeConverter.parseBase64Binary(authHeader.substring(5).trim()));
+			username = username.split(":", 2)[0];
+		}
+		return username;
+	}
+
 	/**
 	 * Searches Handles via Solr.
 	 * 
@@ -251,6 +339,7 @@ public class HandleReverseLookupResource {
 				}
 			}
 			query.add("q", querysb.toString());
+			configuration.applySolrQueryTuning(query);
 			LOGGER.debug("Solr query: " + query);
 			QueryResponse queryResponse = solr.query(query);
 			SolrDocumentList docs = queryResponse.getResults();
@@ -291,14 +380,11 @@ public class HandleReverseLookupResource {
 	 * @param page
 	 *            SQL query offset, skips the given number of results. May be
 	 *            null.
-	 * @param retrieveRecords
-	 *            Set to true to not only retrieve Handle names, but also full
-	 *            records content.
 	 * @return A list of Handles.
 	 * @throws SQLException
 	 */
-	public Object genericSqlSearch(String prefix, MultivaluedMap<String, String> parameters, Integer limit,
-			Integer page, boolean retrieveRecords) throws SQLException {
+	public List<String> genericSqlSearch(String prefix, MultivaluedMap<String, String> parameters, Integer limit,
+			Integer page) throws SQLException {
 		if (parameters.isEmpty()) {
 			return new LinkedList<String>();
 		}
@@ -317,7 +403,7 @@ public class HandleReverseLookupResource {
 			if (parameters.size() == 1) {
 				// Simple query, no joins
 				String key = parameters.keySet().iterator().next();
-				makeSearchSubquery(prefix, key, parameters.get(key), sb, stringParams, limit, page, retrieveRecords);
+				makeSearchSubquery(prefix, key, parameters.get(key), sb, stringParams, limit, page);
 			} else {
 				// Search for Handles with several type entries to be checked
 				// using multiple inner joins
@@ -327,7 +413,7 @@ public class HandleReverseLookupResource {
 					if (tableIndex > 1)
 						sb.append(" inner join ");
 					sb.append("(");
-					makeSearchSubquery(prefix, key, parameters.get(key), sb, stringParams, null, null, false);
+					makeSearchSubquery(prefix, key, parameters.get(key), sb, stringParams, null, null);
 					sb.append(") table_" + tableIndex);
 					if (tableIndex > 1)
 						sb.append(" on table_" + (tableIndex - 1) + ".handle=table_" + tableIndex + ".handle");
@@ -347,32 +433,12 @@ public class HandleReverseLookupResource {
 			}
 			// Execute statement
 			resultSet = statement.executeQuery();
-			if (retrieveRecords) {
-				// Result will be a list of map, because we have to store
-				// multiple values
-				HashMap<String, LinkedList<HashMap<String, String>>> results = new HashMap<String, LinkedList<HashMap<String, String>>>();
-				while (resultSet.next()) {
-					HashMap<String, String> pair = new HashMap<>();
-					pair.put("type", resultSet.getString(2));
-					pair.put("value", resultSet.getString(3));
-					LinkedList<HashMap<String, String>> handlevalues = results.get(resultSet.getString(1));
-					if (handlevalues == null) {
-						LinkedList<HashMap<String, String>> list = new LinkedList<>();
-						list.add(pair);
-						results.put(resultSet.getString(1), list);
-					} else {
-						handlevalues.add(pair);
-					}
-				}
-				return results;
-			} else {
-				// Result will be a simple list of Handle names
-				List<String> results = new LinkedList<String>();
-				while (resultSet.next()) {
-					results.add(resultSet.getString(1));
-				}
-				return results;
+			// Result will be a simple list of Handle names
+			List<String> results = new LinkedList<String>();
+			while (resultSet.next()) {
+				results.add(resultSet.getString(1));
 			}
+			return results;
 		} finally {
 			if (resultSet != null) {
 				try {
@@ -399,17 +465,12 @@ public class HandleReverseLookupResource {
 	}
 
 	private void makeSearchSubquery(String prefix, String key, List<String> list, StringBuffer sb,
-			List<String> stringParams, Integer limit, Integer page, boolean retrieveRecords) {
-		if (retrieveRecords) {
-			sb.append(
-					"select handle, type, data from handles as allvalues inner join (select handle as subhandle from handles where type=?");
+			List<String> stringParams, Integer limit, Integer page) {
+		if (prefix != null) {
+			sb.append("select handle from handles where handle like '" + prefix + "%'");
+			sb.append(" and type=?");
 		} else {
-			if (prefix != null) {
-				sb.append("select handle from handles where handle like '" + prefix + "%'");
-				sb.append(" and type=?");
-			} else {
-				sb.append("select handle from handles where type=?");
-			}
+			sb.append("select handle from handles where type=?");
 		}
 		stringParams.add(key);
 		for (String value : list) {
@@ -426,19 +487,6 @@ public class HandleReverseLookupResource {
 			sb.append(" limit " + Math.min(limit, 100000));
 		if (page != null)
 			sb.append(" offset " + page * limit);
-		if (retrieveRecords)
-			sb.append(") subtable on allvalues.handle=subtable.subhandle where type != \"HS_SECKEY\""); // close
-																										// sub-select;
-																										// limit/page
-																										// be
-																										// applied
-																										// to
-																										// it
-																										// rather
-																										// than
-																										// the
-																										// outer
-																										// select
 	}
 
 }
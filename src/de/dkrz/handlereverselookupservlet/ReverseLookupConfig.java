@@ -1,15 +1,37 @@
 package de.dkrz.handlereverselookupservlet;
 
+import java.io.IOException;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jws.soap.SOAPBinding.Use;
 import javax.servlet.ServletContext;
+import javax.sql.ConnectionPoolDataSource;
 import javax.sql.DataSource;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.http.client.HttpClient;
 import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.ModifiableSolrParams;
 import com.mchange.v2.c3p0.ComboPooledDataSource;
 import com.mchange.v2.c3p0.DataSources;
+import com.mchange.v2.c3p0.PoolBackedDataSource;
+import com.mchange.v2.c3p0.WrapperConnectionPoolDataSource;
 
 /**
  * A singleton holding configuration information for the reverse lookup service.
@@ -22,25 +44,44 @@ import com.mchange.v2.c3p0.DataSources;
  */
 public class ReverseLookupConfig {
 
+	private static final Logger LOGGER = LogManager.getLogger(ReverseLookupConfig.class);
+
 	private static ReverseLookupConfig instance = null;
 
 	private String jdbcDriverClassName;
 	private String sqlConnectionString;
 	private String sqlUsername;
 	private String sqlPassword;
-	private DataSource handleDataSource;
+	private volatile DataSource handleDataSource;
+	private int recordRetrievalChunkSize = 1000;
+	private int recordRetrievalThreads = 4;
+	private int recordRetrievalPoolSize = 8;
+	private volatile ExecutorService recordRetrievalExecutor;
 
 	private boolean useSolr = false;
 	private boolean useSql = false;
 
 	private String solrCloudZkHost;
 	private String solrCollection;
+	private int solrMaxConnections = 128;
+	private int solrMaxConnectionsPerHost = 32;
+	private int solrConnectTimeout = 15000;
+	private int solrSocketTimeout = 60000;
+	private boolean solrPreferLocalShards = false;
+	private String solrShardsPreference;
+	private boolean solrIdOnlyFieldList = true;
+	private Boolean solrDistrib;
+
+	private volatile CloudSolrClient solrClient;
 
-	private CloudSolrClient solrClient;
+	private volatile BackendInitializer sqlInitialization;
+	private volatile BackendInitializer solrInitialization;
 	
 	private boolean logAllQueries = false;
 	private String serviceName;
 
+	private UserAdmissionControl userAdmissionControl;
+
 	private static String getParam(ServletContext sc, Map<Object, Object> additionalProperties, Object key,
 			boolean requiredParam) throws InvalidConfigException {
 		String s = sc.getInitParameter(key.toString());
@@ -67,6 +108,39 @@ public class ReverseLookupConfig {
 		return Boolean.parseBoolean(sc.getInitParameter(key.toString()));
 	}
 
+	private static ThreadFactory daemonThreadFactory(final String namePrefix) {
+		final AtomicInteger threadCount = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, namePrefix + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	private static int getIntParam(ServletContext sc, Map<Object, Object> additionalProperties, Object key,
+			int defaultValue) throws InvalidConfigException {
+		return getIntParam(sc, additionalProperties, key, defaultValue, 1);
+	}
+
+	private static int getIntParam(ServletContext sc, Map<Object, Object> additionalProperties, Object key,
+			int defaultValue, int minValue) throws InvalidConfigException {
+		String s = getParam(sc, additionalProperties, key, false);
+		if (s == null)
+			return defaultValue;
+		int i;
+		try {
+			i = Integer.parseInt(s.trim());
+		} catch (NumberFormatException exc) {
+			throw new InvalidConfigException("Parameter '" + key + "' must be an integer, but is '" + s + "'!");
+		}
+		if (i < minValue)
+			throw new InvalidConfigException("Parameter '" + key + "' must be an integer of at least " + minValue + "!");
+		return i;
+	}
+
 	/**
 	 * Constructor that initializes the config with parameters from the servlet
 	 * context and additional properties. The servlet context parameters are
@@ -89,18 +163,59 @@ public class ReverseLookupConfig {
 		this.useSolr = getBooleanParam(servletContext, additionalProperties, "useSolr", false);
 		if (useSql) {
 			this.jdbcDriverClassName = getParam(servletContext, additionalProperties, "jdbcDriverClassName", true);
+			/*
+			 * Load jdbc driver class - this is apparently NOT done
+			 * automatically for some combinations of driver, tomcat and Java.
+			 * Done here so a wrong class name still fails servlet startup.
+			 */
+			if (jdbcDriverClassName.length() > 0) {
+				try {
+					Class.forName(jdbcDriverClassName);
+				} catch (ClassNotFoundException exc) {
+					throw new InvalidConfigException(
+							"The JDBC driver class '" + jdbcDriverClassName + "' cannot be loaded!");
+				}
+			}
 			this.sqlConnectionString = getParam(servletContext, additionalProperties, "sqlConnectionString", true);
 			this.sqlUsername = getParam(servletContext, additionalProperties, "sqlUsername", true);
 			this.sqlPassword = getParam(servletContext, additionalProperties, "sqlPassword", true);
+			this.recordRetrievalChunkSize = getIntParam(servletContext, additionalProperties,
+					"recordRetrievalChunkSize", 1000);
+			this.recordRetrievalThreads = getIntParam(servletContext, additionalProperties, "recordRetrievalThreads",
+					4);
+			this.recordRetrievalPoolSize = getIntParam(servletContext, additionalProperties,
+					"recordRetrievalPoolSize", Math.max(8, recordRetrievalThreads));
 		}
 		if (useSolr) {
 			this.solrCloudZkHost = getParam(servletContext, additionalProperties, "solrCloudZkHost", true);
 			this.solrCollection = getParam(servletContext, additionalProperties, "solrCollection", true);
+			this.solrMaxConnections = getIntParam(servletContext, additionalProperties, "solrMaxConnections", 128);
+			this.solrMaxConnectionsPerHost = getIntParam(servletContext, additionalProperties,
+					"solrMaxConnectionsPerHost", 32);
+			this.solrConnectTimeout = getIntParam(servletContext, additionalProperties, "solrConnectTimeout", 15000);
+			this.solrSocketTimeout = getIntParam(servletContext, additionalProperties, "solrSocketTimeout", 60000);
+			this.solrPreferLocalShards = getBooleanParam(servletContext, additionalProperties,
+					"solrPreferLocalShards", false);
+			this.solrShardsPreference = getParam(servletContext, additionalProperties, "solrShardsPreference", false);
+			String idOnly = getParam(servletContext, additionalProperties, "solrIdOnlyFieldList", false);
+			this.solrIdOnlyFieldList = (idOnly == null) || Boolean.parseBoolean(idOnly);
+			String distrib = getParam(servletContext, additionalProperties, "solrDistrib", false);
+			if (distrib != null)
+				this.solrDistrib = Boolean.parseBoolean(distrib);
 		}
 		if (!(this.useSql || this.useSolr))
 			throw new InvalidConfigException("The configuration must enable at least one of 'useSolr' or 'useSql'!");
 		this.logAllQueries = getBooleanParam(servletContext, additionalProperties, "logAllQueries", false);
 		this.serviceName = getParam(servletContext, additionalProperties, "serviceName", false);
+		int userRequestsPerSecond = getIntParam(servletContext, additionalProperties, "userRequestsPerSecond", 0, 0);
+		int userRequestBurst = getIntParam(servletContext, additionalProperties, "userRequestBurst", 0, 0);
+		if ((userRequestBurst > 0) && (userRequestsPerSecond == 0))
+			throw new InvalidConfigException(
+					"Parameter 'userRequestBurst' requires 'userRequestsPerSecond' to be set as well!");
+		this.userAdmissionControl = new UserAdmissionControl(userRequestsPerSecond, userRequestBurst,
+				getIntParam(servletContext, additionalProperties, "userMaxConcurrentRequests", 0, 0),
+				getIntParam(servletContext, additionalProperties, "userMaxResultRows", 0, 0),
+				getIntParam(servletContext, additionalProperties, "userResultRowsWindowSeconds", 60));
 		this.instance = this;
 	}
 
@@ -132,34 +247,338 @@ public class ReverseLookupConfig {
 	 * via {@link getHandleDataSource}. Only call this method once after
 	 * Singleton initialization.
 	 * 
-	 * @throws ClassNotFoundException
 	 * @throws SQLException 
+	 * @throws InvalidConfigException
+	 *             if the record retrieval pool would leave no connections
+	 *             for other queries.
 	 */
-	public void createHandleDataSource() throws ClassNotFoundException, SQLException {
+	public void createHandleDataSource() throws SQLException, InvalidConfigException {
 		if (!useSql)
 			return;
-		/*
-		 * Load jdbc driver class - this is apparently NOT done automatically
-		 * for some combinations of driver, tomcat and Java
-		 */
-		if ((getJdbcDriverClassName() != null) && (getJdbcDriverClassName().length() > 0))
-			Class.forName(getJdbcDriverClassName());
 		// Create unpooled datasource, then put a pooled one on top of it
 		// (done as described in c3p0 introcuction)
 		DataSource ds_unpooled = DataSources.unpooledDataSource(sqlConnectionString, sqlUsername, sqlPassword);
-		handleDataSource = DataSources.pooledDataSource(ds_unpooled);
+		DataSource ds_pooled = DataSources.pooledDataSource(ds_unpooled);
+		try {
+			checkRecordRetrievalPoolSize(ds_pooled);
+			warmUpDataSource(ds_pooled);
+		} catch (SQLException | InvalidConfigException exc) {
+			// Do not leak the pool's helper threads; a retry creates a new one
+			try {
+				DataSources.destroy(ds_pooled);
+			} catch (SQLException e) {
+				// swallow
+			}
+			throw exc;
+		}
+		// Worker pool for fetching full records in parallel chunks
+		recordRetrievalExecutor = Executors.newFixedThreadPool(recordRetrievalPoolSize,
+				daemonThreadFactory("hrls-record-retrieval-"));
+		handleDataSource = ds_pooled;
+	}
+
+	/**
+	 * Record retrieval workers each hold a pooled connection while fetching a
+	 * chunk. Make sure they cannot take all of c3p0's connections, which would
+	 * starve plain searches and the first query of other record requests.
+	 */
+	private void checkRecordRetrievalPoolSize(DataSource dataSource) throws InvalidConfigException {
+		if (!(dataSource instanceof PoolBackedDataSource))
+			return;
+		ConnectionPoolDataSource cpds = ((PoolBackedDataSource) dataSource).getConnectionPoolDataSource();
+		if (!(cpds instanceof WrapperConnectionPoolDataSource))
+			return;
+		int maxPoolSize = ((WrapperConnectionPoolDataSource) cpds).getMaxPoolSize();
+		if (recordRetrievalPoolSize >= maxPoolSize)
+			throw new InvalidConfigException("Parameter 'recordRetrievalPoolSize' (" + recordRetrievalPoolSize
+					+ ") must be smaller than c3p0.maxPoolSize (" + maxPoolSize + ")!");
+	}
+
+	/**
+	 * Pre-warms the connection pool by checking out as many connections as a
+	 * single record retrieval may use in parallel, and runs a trivial query on
+	 * the Handle table so the first real request does not pay for it.
+	 */
+	private void warmUpDataSource(DataSource dataSource) throws SQLException {
+		List<Connection> connections = new ArrayList<Connection>();
+		try {
+			for (int i = 0; i < recordRetrievalThreads; i++) {
+				connections.add(dataSource.getConnection());
+			}
+			Statement statement = connections.get(0).createStatement();
+			try {
+				statement.executeQuery("select handle from handles limit 1").close();
+			} finally {
+				statement.close();
+			}
+		} finally {
+			for (Connection connection : connections) {
+				try {
+					connection.close();
+				} catch (SQLException e) {
+					// swallow
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the executor used to fetch record contents in parallel chunks.
+	 * 
+	 * @return ExecutorService May be null if no SQL backend is available.
+	 */
+	public ExecutorService getRecordRetrievalExecutor() {
+		return recordRetrievalExecutor;
+	}
+
+	/**
+	 * Maximum number of Handles whose records are fetched with a single
+	 * <code>handle IN (...)</code> query.
+	 * 
+	 * @return chunk size, 1000 by default
+	 */
+	public int getRecordRetrievalChunkSize() {
+		return recordRetrievalChunkSize;
+	}
+
+	/**
+	 * Number of record chunks that a single request may have in flight at the
+	 * same time. All requests share the worker pool of
+	 * {@link getRecordRetrievalPoolSize} threads, so the effective parallelism
+	 * of a request is lower while other requests are retrieving records.
+	 * 
+	 * @return number of chunks per request, 4 by default
+	 */
+	public int getRecordRetrievalThreads() {
+		return recordRetrievalThreads;
+	}
+
+	/**
+	 * Number of worker threads shared by all requests for fetching record
+	 * chunks; this also bounds the SQL connections used for it, and must be
+	 * smaller than c3p0.maxPoolSize so other queries still get connections.
+	 * 
+	 * @return pool size, 8 (or recordRetrievalThreads, if larger) by default
+	 */
+	public int getRecordRetrievalPoolSize() {
+		return recordRetrievalPoolSize;
 	}
 
 	/**
 	 * Creates a new {@link CloudSolrClient} instance to use during the servlet
-	 * lifetime. The corresponding config options must have been provided.
+	 * lifetime. The corresponding config options must have been provided. The
+	 * client fetches the cluster state from ZooKeeper and runs a warm-up query
+	 * before it is made available via {@link getSolrClient}. <br/>
 	 * 
+	 * The client is shared by all lookups, so its underlying HTTP connection
+	 * pool is sized and given timeouts from the configuration rather than
+	 * using the HttpClient defaults.
+	 * 
+	 * @throws SolrServerException
+	 * @throws IOException
 	 */
-	public void createSolrClient() {
+	public void createSolrClient() throws SolrServerException, IOException {
 		if (!useSolr)
 			return;
-		solrClient = new CloudSolrClient(solrCloudZkHost);
-		solrClient.setDefaultCollection(solrCollection);
+		ModifiableSolrParams httpParams = new ModifiableSolrParams();
+		httpParams.set(HttpClientUtil.PROP_MAX_CONNECTIONS, solrMaxConnections);
+		httpParams.set(HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST, solrMaxConnectionsPerHost);
+		httpParams.set(HttpClientUtil.PROP_CONNECTION_TIMEOUT, solrConnectTimeout);
+		httpParams.set(HttpClientUtil.PROP_SO_TIMEOUT, solrSocketTimeout);
+		HttpClient httpClient = HttpClientUtil.createClient(httpParams);
+		CloudSolrClient client = new CloudSolrClient(solrCloudZkHost, httpClient);
+		client.setDefaultCollection(solrCollection);
+		try {
+			client.connect();
+			SolrQuery query = new SolrQuery("*:*");
+			query.setRows(0);
+			applySolrQueryTuning(query);
+			client.query(query);
+		} catch (SolrServerException | IOException | RuntimeException exc) {
+			// Release ZooKeeper connection and HTTP pool; a retry creates new
+			// ones
+			try {
+				client.close();
+			} catch (IOException e) {
+				// swallow
+			}
+			HttpClientUtil.close(httpClient);
+			throw exc;
+		}
+		solrClient = client;
+	}
+
+	/**
+	 * Adds the configured routing and response tuning parameters to a Solr
+	 * query:
+	 * <ul>
+	 * <li><em>solrPreferLocalShards:</em> prefer replicas on the node that
+	 * receives the request (<code>preferLocalShards=true</code>; requires Solr
+	 * 5.3 or newer on the server side).</li>
+	 * <li><em>solrShardsPreference:</em> passed on as
+	 * <code>shards.preference</code>, e.g.
+	 * <code>replica.location:local,replica.type:PULL</code> (requires Solr 7.4
+	 * or newer on the server side).</li>
+	 * <li><em>solrIdOnlyFieldList:</em> only return the id field
+	 * (<code>fl=id</code>); enabled by default.</li>
+	 * <li><em>solrDistrib:</em> if set, passed on as <code>distrib</code>;
+	 * <code>false</code> is only sensible for single-shard collections.</li>
+	 * </ul>
+	 * 
+	 * @param query
+	 *            The query to modify.
+	 */
+	public void applySolrQueryTuning(SolrQuery query) {
+		if (solrPreferLocalShards)
+			query.set("preferLocalShards", true);
+		if ((solrShardsPreference != null) && (solrShardsPreference.length() > 0))
+			query.set("shards.preference", solrShardsPreference);
+		if (solrIdOnlyFieldList)
+			query.setFields("id");
+		if (solrDistrib != null)
+			query.set("distrib", solrDistrib.booleanValue());
+	}
+
+	/**
+	 * Sets up one backend in the background. A failed attempt that may be
+	 * transient (e.g. because the database or ZooKeeper is briefly unreachable
+	 * at boot) is retried with exponential backoff until it succeeds. Other
+	 * failures, such as invalid configuration, are permanent and only
+	 * reported.
+	 */
+	private static abstract class BackendInitializer implements Runnable {
+
+		private static final long INITIAL_RETRY_DELAY_MILLIS = 1000;
+		private static final long MAX_RETRY_DELAY_MILLIS = 60000;
+
+		private final String name;
+		private final ScheduledExecutorService scheduler;
+		private final long startTime = System.currentTimeMillis();
+		private long retryDelayMillis = INITIAL_RETRY_DELAY_MILLIS;
+		private volatile boolean ready = false;
+		private volatile String lastFailure;
+		private volatile boolean retrying = false;
+
+		BackendInitializer(String name, ScheduledExecutorService scheduler) {
+			this.name = name;
+			this.scheduler = scheduler;
+		}
+
+		protected abstract void initialize() throws Exception;
+
+		@Override
+		public void run() {
+			try {
+				initialize();
+			} catch (Exception exc) {
+				lastFailure = exc.getMessage();
+				retrying = isTransient(exc);
+				if (!retrying) {
+					LOGGER.error(name + " backend initialization failed permanently", exc);
+					return;
+				}
+				LOGGER.error(name + " backend initialization failed, retrying in " + retryDelayMillis + "ms", exc);
+				scheduler.schedule(this, retryDelayMillis, TimeUnit.MILLISECONDS);
+				retryDelayMillis = Math.min(retryDelayMillis * 2, MAX_RETRY_DELAY_MILLIS);
+				return;
+			}
+			lastFailure = null;
+			ready = true;
+			LOGGER.info(name + " backend ready after " + (System.currentTimeMillis() - startTime) + "ms");
+		}
+
+		private static boolean isTransient(Exception exc) {
+			// SolrException covers ZooKeeper connection failures in connect()
+			return (exc instanceof SQLException) || (exc instanceof SolrServerException)
+					|| (exc instanceof IOException) || (exc instanceof SolrException);
+		}
+
+		boolean isReady() {
+			return ready;
+		}
+
+		String describeStatus() {
+			if (ready)
+				return "ready";
+			String failure = lastFailure;
+			if (failure != null)
+				return "failed: " + failure + (retrying ? " (retrying)" : "");
+			return "initializing";
+		}
+	}
+
+	/**
+	 * Starts creating the SQL data source and the Solr client concurrently in
+	 * the background and returns immediately. Until a backend has finished,
+	 * {@link isSqlReady} or {@link isSolrReady} will return false; failed
+	 * attempts are retried with backoff. Only call this method once after
+	 * Singleton initialization.
+	 */
+	public void initializeBackends() {
+		ScheduledExecutorService initExecutor = Executors.newScheduledThreadPool(2,
+				daemonThreadFactory("hrls-backend-init-"));
+		if (useSql) {
+			sqlInitialization = new BackendInitializer("SQL", initExecutor) {
+				@Override
+				protected void initialize() throws Exception {
+					createHandleDataSource();
+				}
+			};
+			initExecutor.execute(sqlInitialization);
+		}
+		if (useSolr) {
+			solrInitialization = new BackendInitializer("Solr", initExecutor) {
+				@Override
+				protected void initialize() throws Exception {
+					createSolrClient();
+				}
+			};
+			initExecutor.execute(solrInitialization);
+		}
+	}
+
+	private static String describeStatus(boolean enabled, BackendInitializer initialization) {
+		if (!enabled)
+			return "disabled";
+		if (initialization == null)
+			return "initializing";
+		return initialization.describeStatus();
+	}
+
+	/**
+	 * Confirm whether the SQL backend has been initialized and can be used.
+	 * 
+	 * @return true if SQL is configured and its data source is ready.
+	 */
+	public boolean isSqlReady() {
+		return useSql && (sqlInitialization != null) && sqlInitialization.isReady();
+	}
+
+	/**
+	 * Confirm whether the Solr backend has been initialized and can be used.
+	 * 
+	 * @return true if Solr is configured and its client is ready.
+	 */
+	public boolean isSolrReady() {
+		return useSolr && (solrInitialization != null) && solrInitialization.isReady();
+	}
+
+	/**
+	 * Human-readable SQL backend status for readiness reporting.
+	 * 
+	 * @return One of "disabled", "initializing", "ready" or "failed: ..."
+	 */
+	public String getSqlStatus() {
+		return describeStatus(useSql, sqlInitialization);
+	}
+
+	/**
+	 * Human-readable Solr backend status for readiness reporting.
+	 * 
+	 * @return One of "disabled", "initializing", "ready" or "failed: ..."
+	 */
+	public String getSolrStatus() {
+		return describeStatus(useSolr, solrInitialization);
 	}
 
 	/**
@@ -207,4 +626,13 @@ public class ReverseLookupConfig {
 		return serviceName;
 	}
 
+	/**
+	 * 
+	 * @return The per-user admission control. Never null, but may have no
+	 *         limits enabled.
+	 */
+	public UserAdmissionControl getUserAdmissionControl() {
+		return userAdmissionControl;
+	}
+
 }
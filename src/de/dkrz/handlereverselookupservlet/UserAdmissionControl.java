@@ -0,0 +1,211 @@
+package de.dkrz.handlereverselookupservlet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-user admission control for search requests. Each user (as identified by
+ * the HTTP Basic authentication name) is subject to up to three independent
+ * limits, each of which is disabled if configured as 0:
+ * <ul>
+ * <li>A token bucket limiting the request rate
+ * (<em>userRequestsPerSecond</em>, with bursts up to
+ * <em>userRequestBurst</em>; a burst smaller than the rate is raised to the
+ * rate).</li>
+ * <li>A maximum number of requests in flight at the same time
+ * (<em>userMaxConcurrentRequests</em>).</li>
+ * <li>A budget of result rows per fixed time window
+ * (<em>userMaxResultRows</em> per <em>userResultRowsWindowSeconds</em>). The
+ * requested limit is reserved on admission, and rows not actually returned are
+ * refunded when the request finishes.</li>
+ * </ul>
+ *
+ */
+public class UserAdmissionControl {
+
+	private final int requestsPerSecond;
+	private final int requestBurst;
+	private final int maxConcurrentRequests;
+	private final int maxResultRows;
+	private final long resultRowsWindowMillis;
+
+	private final ConcurrentMap<String, UserState> users = new ConcurrentHashMap<String, UserState>();
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong rejectedRate = new AtomicLong();
+	private final AtomicLong rejectedConcurrency = new AtomicLong();
+	private final AtomicLong rejectedResultRows = new AtomicLong();
+	private final AtomicLong rejectedOversizedLimit = new AtomicLong();
+
+	/**
+	 * A granted admission. Must be released exactly once when the request
+	 * has finished.
+	 */
+	public class Ticket {
+
+		private final UserState state;
+		private final int reservedRows;
+		private final long windowStartMillis;
+		private boolean released = false;
+
+		private Ticket(UserState state, int reservedRows, long windowStartMillis) {
+			this.state = state;
+			this.reservedRows = reservedRows;
+			this.windowStartMillis = windowStartMillis;
+		}
+
+		/**
+		 * Releases the in-flight slot and refunds reserved but unused rows.
+		 *
+		 * @param returnedRows
+		 *            Number of result rows actually returned to the user.
+		 */
+		public void release(int returnedRows) {
+			if (released)
+				return;
+			released = true;
+			state.release(Math.max(0, reservedRows - returnedRows), windowStartMillis);
+		}
+	}
+
+	public UserAdmissionControl(int requestsPerSecond, int requestBurst, int maxConcurrentRequests,
+			int maxResultRows, int resultRowsWindowSeconds) {
+		super();
+		this.requestsPerSecond = requestsPerSecond;
+		this.requestBurst = Math.max(requestBurst, requestsPerSecond);
+		this.maxConcurrentRequests = maxConcurrentRequests;
+		this.maxResultRows = maxResultRows;
+		this.resultRowsWindowMillis = resultRowsWindowSeconds * 1000L;
+	}
+
+	/**
+	 * Confirm whether any limit has been configured at all.
+	 *
+	 * @return true if at least one limit is enabled.
+	 */
+	public boolean isEnabled() {
+		return (requestsPerSecond > 0) || (maxConcurrentRequests > 0) || (maxResultRows > 0);
+	}
+
+	/**
+	 * Confirm whether a request for the given number of rows can never be
+	 * admitted, because it alone exceeds the row budget of a whole window. Such
+	 * requests are counted as rejected.
+	 *
+	 * @param requestedRows
+	 *            The maximum number of result rows the request may return.
+	 * @return true if the request exceeds the configured row budget.
+	 */
+	public boolean exceedsResultRowBudget(int requestedRows) {
+		if ((maxResultRows > 0) && (requestedRows > maxResultRows)) {
+			rejectedOversizedLimit.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return The row budget per window, or 0 if unlimited.
+	 */
+	public int getMaxResultRows() {
+		return maxResultRows;
+	}
+
+	/**
+	 * Admits a request of the given user or rejects it if any of the user's
+	 * limits would be exceeded.
+	 *
+	 * @param username
+	 *            The authenticated user name.
+	 * @param requestedRows
+	 *            The maximum number of result rows the request may return.
+	 * @return A ticket to release once the request has finished.
+	 * @throws AdmissionDeniedException
+	 *             if the request must not be processed now.
+	 */
+	public Ticket admit(String username, int requestedRows) throws AdmissionDeniedException {
+		UserState state = users.get(username);
+		if (state == null) {
+			UserState newState = new UserState();
+			state = users.putIfAbsent(username, newState);
+			if (state == null)
+				state = newState;
+		}
+		int reservedRows = (maxResultRows > 0) ? requestedRows : 0;
+		long windowStartMillis = state.admit(reservedRows);
+		admitted.incrementAndGet();
+		return new Ticket(state, reservedRows, windowStartMillis);
+	}
+
+	/**
+	 * Returns admission counters since servlet startup.
+	 *
+	 * @return A map of counter names to values.
+	 */
+	public Map<String, Object> getMetrics() {
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("admitted", admitted.get());
+		metrics.put("rejectedRate", rejectedRate.get());
+		metrics.put("rejectedConcurrency", rejectedConcurrency.get());
+		metrics.put("rejectedResultRows", rejectedResultRows.get());
+		metrics.put("rejectedOversizedLimit", rejectedOversizedLimit.get());
+		return metrics;
+	}
+
+	private class UserState {
+
+		private double tokens = requestBurst;
+		private long lastRefillNanos = System.nanoTime();
+		private int inFlight = 0;
+		private long windowStartMillis = System.currentTimeMillis();
+		private long rowsUsed = 0;
+
+		synchronized long admit(int reservedRows) throws AdmissionDeniedException {
+			if (requestsPerSecond > 0) {
+				long now = System.nanoTime();
+				tokens = Math.min(requestBurst, tokens + (now - lastRefillNanos) * requestsPerSecond / 1e9);
+				lastRefillNanos = now;
+				if (tokens < 1) {
+					rejectedRate.incrementAndGet();
+					throw new AdmissionDeniedException("Request rate limit of " + requestsPerSecond
+							+ " requests per second exceeded.", (long) Math.ceil((1 - tokens) / requestsPerSecond));
+				}
+			}
+			if ((maxConcurrentRequests > 0) && (inFlight >= maxConcurrentRequests)) {
+				rejectedConcurrency.incrementAndGet();
+				throw new AdmissionDeniedException(
+						"Limit of " + maxConcurrentRequests + " concurrent requests exceeded.", 1);
+			}
+			if (maxResultRows > 0) {
+				long now = System.currentTimeMillis();
+				if (now - windowStartMillis >= resultRowsWindowMillis) {
+					windowStartMillis = now;
+					rowsUsed = 0;
+				}
+				if (rowsUsed + reservedRows > maxResultRows) {
+					rejectedResultRows.incrementAndGet();
+					long retryAfter = Math.max(1, (windowStartMillis + resultRowsWindowMillis - now + 999) / 1000);
+					throw new AdmissionDeniedException("Result row budget of " + maxResultRows + " rows per "
+							+ (resultRowsWindowMillis / 1000) + " seconds exceeded (" + reservedRows
+							+ " rows requested, " + Math.max(0, maxResultRows - rowsUsed) + " left).", retryAfter);
+				}
+				rowsUsed += reservedRows;
+			}
+			if (requestsPerSecond > 0)
+				tokens -= 1;
+			inFlight++;
+			return windowStartMillis;
+		}
+
+		synchronized void release(int unusedRows, long admittedWindowStartMillis) {
+			inFlight--;
+			// Rows reserved in an earlier window have already expired
+			if (admittedWindowStartMillis == windowStartMillis)
+				rowsUsed = Math.max(0, rowsUsed - unusedRows);
+		}
+	}
+
+}
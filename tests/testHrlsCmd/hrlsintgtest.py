@@ -47,6 +47,7 @@ class HrlsIntegrationTests(unittest.TestCase):
         self.username = jsonfilecontent.pop('reverselookup_username')
         self.password = jsonfilecontent.pop('reverselookup_password')
         self.https_verify = jsonfilecontent.pop('HTTPS_verify', 'True') == 'True'
+        self.user_max_result_rows = int(jsonfilecontent.pop('user_max_result_rows', '0'))
         if not self.https_verify:
             requests.packages.urllib3.disable_warnings() 
  
@@ -66,6 +67,58 @@ class HrlsIntegrationTests(unittest.TestCase):
             ping_result.content, 'OK\n',
             'ping hrls returns unexpected response')
 
+    def test_ready(self):
+        """Test that ready reports all configured backends as ready."""
+        ready_result = execute_curl(self.handle_server_url+'/hrls/ready', self.username, self.password, None, self.https_verify)
+        self.assertEqual(
+            ready_result.status_code, 200,
+            'ready hrls returns unexpected status')
+        ready_json = json.loads(ready_result.content)
+        self.assertEqual(
+            ready_json['ready'], True,
+            'ready hrls returns unexpected response')
+        self.assertIn(
+            ready_json['sql'], ['ready', 'disabled'],
+            'ready hrls returns unexpected sql status')
+        self.assertIn(
+            ready_json['solr'], ['ready', 'disabled'],
+            'ready hrls returns unexpected solr status')
+        self.assertNotEqual(
+            [ready_json['sql'], ready_json['solr']], ['disabled', 'disabled'],
+            'ready hrls reports no configured backend')
+
+    def test_metrics(self):
+        """Test that metrics returns the admission control counters."""
+        metrics_result = execute_curl(self.handle_server_url+'/hrls/metrics', self.username, self.password, None, self.https_verify)
+        self.assertEqual(
+            metrics_result.status_code, 200,
+            'metrics hrls returns unexpected status')
+        metrics_json = json.loads(metrics_result.content)
+        for counter in ['admitted', 'rejectedRate', 'rejectedConcurrency', 'rejectedResultRows', 'rejectedOversizedLimit']:
+            self.assertIn(
+                counter, metrics_json,
+                'metrics hrls misses counter %s' % counter)
+            self.assertTrue(
+                metrics_json[counter] >= 0,
+                'metrics hrls returns unexpected value for %s' % counter)
+
+    def test_search_handle_by_existing_key_value_limit_above_user_max_result_rows(self):
+        """Test that search by ['URL=http://www.test_hrls_check.com/*','limit=<userMaxResultRows+1>'] is rejected with 400."""
+        if self.user_max_result_rows <= 0:
+            self.skipTest('requires user_max_result_rows in the credentials file')
+        if self.user_max_result_rows >= 100000:
+            self.skipTest('SQL searches are charged at most 100000 rows')
+        metrics_before = json.loads(execute_curl(self.handle_server_url+'/hrls/metrics', self.username, self.password, None, self.https_verify).content)
+        search_array=['URL=http://www.test_hrls_check.com/*','limit='+str(self.user_max_result_rows+1)]
+        search_result = execute_curl(self.handle_server_url+'/hrls/handles', self.username, self.password, search_array, self.https_verify)
+        self.assertEqual(
+            search_result.status_code, 400,
+            'search hrls with limit above user_max_result_rows returns unexpected status')
+        metrics_after = json.loads(execute_curl(self.handle_server_url+'/hrls/metrics', self.username, self.password, None, self.https_verify).content)
+        self.assertTrue(
+            metrics_after['rejectedOversizedLimit'] > metrics_before['rejectedOversizedLimit'],
+            'search hrls with limit above user_max_result_rows is not counted in metrics')
+
     def test_search_handle_by_non_existing_key_value_1(self):
         """Test that search by ['URL=my_unknown_handle_url'] returns no matching handle."""
         search_array=['URL=my_unknown_handle_url']
@@ -496,6 +549,87 @@ class HrlsIntegrationTests(unittest.TestCase):
             'HS_SECKEY', search_result.content,
             'search handle by existing key value gives back HS_SECKEY response')
 
+    def test_search_handle_by_existing_key_value_retrieverecords_4(self):
+        """Test that search by ['URL=http://www.test_hrls_check.com/000001','EMAIL=test_hrls_000001@test_hrls_check.com','retrieverecords=true'] returns all records for that handle."""
+        search_array=['URL=http://www.test_hrls_check.com/000001','EMAIL=test_hrls_000001@test_hrls_check.com','retrieverecords=true']
+        search_result = execute_curl(self.handle_server_url+'/hrls/handles', self.username, self.password, search_array, self.https_verify)
+        self.assertEqual(
+            search_result.status_code, 200,
+            'search hrls by several existing key values returns unexpected status')
+        search_result_list = json.loads(search_result.content)
+        self.assertEqual(
+            search_result_list.keys(), [str(self.prefix)+'/HRLS_CHECK_HANDLE_000001'],
+            'search handle by several existing key values returns unexpected response')
+        types = [pair['type'] for pair in search_result_list[str(self.prefix)+'/HRLS_CHECK_HANDLE_000001']]
+        self.assertEqual(
+            set(types), set(['URL', 'EMAIL', 'TEXT', 'HS_ADMIN']),
+            'search handle by several existing key values returns unexpected response')
+        self.assertEqual(
+            len(types), 4,
+            'search handle by several existing key values returns unexpected response')
+
+    def test_search_handle_by_existing_key_value_retrieverecords_5(self):
+        """Test that search by ['URL=http://www.test_hrls_check.com/000001','EMAIL=test_hrls_000002@test_hrls_check.com','retrieverecords=true'] returns no records."""
+        search_array=['URL=http://www.test_hrls_check.com/000001','EMAIL=test_hrls_000002@test_hrls_check.com','retrieverecords=true']
+        search_result = execute_curl(self.handle_server_url+'/hrls/handles', self.username, self.password, search_array, self.https_verify)
+        self.assertEqual(
+            search_result.status_code, 200,
+            'search hrls by several key values returns unexpected status')
+        self.assertEqual(
+            json.loads(search_result.content), {},
+            'search handle by several non-matching key values returns unexpected response')
+
+    def test_search_handle_by_existing_key_value_retrieverecords_6(self):
+        """Test that search by ['URL=http://www.test_hrls_check.com/*','retrieverecords=true','limit=2500'] returns all records for handles spanning several chunks."""
+        limit = 2500
+        search_array=['URL=http://www.test_hrls_check.com/*','retrieverecords=true','limit='+str(limit)]
+        search_result = execute_curl(self.handle_server_url+'/hrls/handles', self.username, self.password, search_array, self.https_verify)
+        self.assertEqual(
+            search_result.status_code, 200,
+            'search hrls by existing key value returns unexpected status: %s' % search_result.status_code)
+        search_result_list = json.loads(search_result.content)
+        self.assertEqual(
+            len(search_result_list), limit,
+            'search handle by existing key value returns unexpected number of handles')
+        for handle, values in search_result_list.items():
+            self.assertEqual(
+                len(values), 4,
+                'search handle by existing key value returns unexpected response for %s' % handle)
+            self.assertNotIn(
+                'HS_SECKEY', [pair['type'] for pair in values],
+                'search handle by existing key value gives back HS_SECKEY response')
+
+    def test_search_handle_by_prefix_existing_key_value_retrieverecords_1(self):
+        """Test that search by ['prefix','URL=http://www.test_hrls_check.com/00000*','retrieverecords=true','limit=9'] returns all records for those handles."""
+        search_array=['URL=http://www.test_hrls_check.com/00000*','retrieverecords=true','limit=9']
+        search_result = execute_curl(self.handle_server_url+'/hrls/handles/'+self.prefix, self.username, self.password, search_array, self.https_verify)
+        self.assertEqual(
+            search_result.status_code, 200,
+            'search hrls by existing prefix,key value returns unexpected status')
+        search_result_list = json.loads(search_result.content)
+        json_check_list = []
+        for x in xrange(1, 10):
+            counter = "%06d" % x
+            json_check_list.append(self.prefix+'/HRLS_CHECK_HANDLE_'+counter)
+        self.assertEqual(
+            set(search_result_list.keys()), set(json_check_list),
+            'search handle by prefix,existing key value returns unexpected response')
+        for handle in json_check_list:
+            self.assertEqual(
+                len(search_result_list[handle]), 4,
+                'search handle by prefix,existing key value returns unexpected response')
+
+    def test_search_handle_by_prefix_existing_key_value_retrieverecords_2(self):
+        """Test that search by ['prefixi','URL=http://www.test_hrls_check.com/*','retrieverecords=true'] returns no records."""
+        search_array=['URL=http://www.test_hrls_check.com/*','retrieverecords=true']
+        search_result = execute_curl(self.handle_server_url+'/hrls/handles/'+self.prefix+'i', self.username, self.password, search_array, self.https_verify)
+        self.assertEqual(
+            search_result.status_code, 200,
+            'search hrls by existing prefixi,key value returns unexpected status')
+        self.assertEqual(
+            json.loads(search_result.content), {},
+            'search handle by prefixi,existing key value returns unexpected response')
+
     def test_search_handle_by_prefix_existing_key_value_1(self):
         """Test that search by ['prefix','URL=http://www.test_hrls_check.com/*'] returns 1000 handles."""
         limit = 1000